@@ -1,10 +1,15 @@
 package javax.security.auth.message.config;
 
+import java.lang.ref.WeakReference;
 import java.security.AccessController;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
 import java.security.SecurityPermission;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.WeakHashMap;
 
 //$Id$
 
@@ -82,7 +87,14 @@ import java.util.Map;
  */
 public abstract class AuthConfigFactory
 {
-   private static AuthConfigFactory _factory = null;
+   private static volatile AuthConfigFactory _factory = null;
+
+   /* Guards the construction and replacement of the system-wide factory  */
+   private static final Object _factoryLock = new Object();
+
+   /* The factory implementation class resolved for each thread context class loader, guarded by _factoryLock  */
+   private static final Map<ClassLoader, WeakReference<Class<?>>> _factoryClasses =
+      new WeakHashMap<ClassLoader, WeakReference<Class<?>>>();
 
    /* The name of the Security property used to define the default AuthConfigFactory implementation class  */
    public static final String DEFAULT_FACTORY_SECURITY_PROPERTY = "authconfigprovider.factory";
@@ -184,6 +196,10 @@ public abstract class AuthConfigFactory
     * instance of the default factory implementation class is successfully constructed by
     * this method, this method will set it as the system-wide factory instance.</p>
     *
+    * <p>When the DEFAULT_FACTORY_SECURITY_PROPERTY is not set, the first AuthConfigFactory service found by
+    * java.util.ServiceLoader with the thread context class loader is used, and if there is none, the JBoss
+    * default implementation is used.</p>
+    *
     * <p>The absolute pathname of the Java security properties file is JAVA_HOME/lib/security/java.security, where
     * JAVA_HOME refers to the directory where the JDK was installed. </p>
     *
@@ -198,9 +214,11 @@ public abstract class AuthConfigFactory
     *         default factory name was defined via the security property.
     *
     * @throws SecurityException If the caller does not have permission to retrieve the factory,
-    *                           or set it as the system-wide instance. Also thrown if an exception was thrown during the class loading,
-    *                           or construction of the default AuthConfigFactory implementation class; in which case the
-    *                           SecurityException will contain the root Exception as its cause.
+    *                           or set it as the system-wide instance.
+    * @throws IllegalStateException If an exception was thrown during the discovery, class loading, or construction
+    *                           of the AuthConfigFactory implementation class; in which case the IllegalStateException
+    *                           will contain the root Exception as its cause.
+    * @throws ClassCastException If the loaded implementation class is not an AuthConfigFactory.
     */
    public static AuthConfigFactory getFactory()
    {
@@ -209,70 +227,111 @@ public abstract class AuthConfigFactory
       if (sm != null)
          sm.checkPermission(getFactorySecurityPermission);
 
-      if (_factory == null)
+      // Fast path, the factory has already been published
+      AuthConfigFactory factory = _factory;
+      if (factory != null)
+         return factory;
+
+      if (sm != null)
+         sm.checkPermission(setFactorySecurityPermission);
+
+      synchronized (_factoryLock)
+      {
+         // Another caller may have constructed or set the factory while we waited
+         if (_factory == null)
+            _factory = loadFactory();
+         return _factory;
+      }
+   }
+
+   /**
+    * <p>Load and construct the default AuthConfigFactory implementation class. Callers must hold the factory lock so
+    * that concurrent first calls to getFactory construct a single instance.</p>
+    */
+   private static AuthConfigFactory loadFactory()
+   {
+      String factoryName = null;
+      Class clazz = null;
+      try
       {
-          if (sm != null)
-              sm.checkPermission(setFactorySecurityPermission);
+         ClassLoader loader = Thread.currentThread().getContextClassLoader();
+         if (loader == null)
+            loader = AuthConfigFactory.class.getClassLoader();
+         if (loader == null)
+            loader = ClassLoader.getSystemClassLoader();
 
-         String factoryName = null;
-         Class clazz = null;
+         LoadAction action = new LoadAction(loader);
          try
          {
-            LoadAction action = new LoadAction();
-            try
-            {
-               clazz = (Class) AccessController.doPrivileged(action);
-               factoryName = action.getName();
-            }
-            catch (PrivilegedActionException ex)
-            {
-               factoryName = action.getName();
-               Exception e = ex.getException();
-               if (e instanceof ClassNotFoundException)
-                  throw (ClassNotFoundException) e;
-               else
-                  throw new IllegalStateException("Failure during load of class: " + action.getName() + e);
-            }
-            _factory = (AuthConfigFactory) clazz.newInstance();
+            clazz = (Class) AccessController.doPrivileged(action);
+            factoryName = action.getName();
          }
-         catch (ClassNotFoundException e)
+         catch (PrivilegedActionException ex)
          {
-            String msg = "Failed to find AuthConfigFactory : " + factoryName;
-            IllegalStateException ise = new IllegalStateException(msg);
-            ise.initCause(e);
-            throw ise;
-         }
-         catch (IllegalAccessException e)
-         {
-            String msg = "Unable to access class : " + factoryName;
-            IllegalStateException ise = new IllegalStateException(msg);
-            ise.initCause(e);
-            throw ise;
-         }
-         catch (InstantiationException e)
-         {
-            String msg = "Failed to create instance of: " + factoryName;
-            IllegalStateException ise = new IllegalStateException(msg);
-            ise.initCause(e);
-            throw ise;
+            factoryName = action.getName();
+            Exception e = ex.getException();
+            if (e instanceof ClassNotFoundException)
+               throw (ClassNotFoundException) e;
+            else
+            {
+               IllegalStateException ise = new IllegalStateException("Failure during load of class: " + action.getName());
+               ise.initCause(e);
+               throw ise;
+            }
          }
-         catch (ClassCastException e)
+
+         if (clazz == null)
          {
-            StringBuffer msg = new StringBuffer(factoryName + " Is not a AuthConfigFactory, ");
-            msg.append("ACF.class.CL: "+ AuthConfigFactory.class.getClassLoader());
-            msg.append("\nACF.class.CS: " + AuthConfigFactory.class.getProtectionDomain().getCodeSource());
-            msg.append("\nACF.class.hash: "+System.identityHashCode(AuthConfigFactory.class));
-            msg.append("\nclazz.CL: "+clazz.getClassLoader());
-            msg.append("\nclazz.CS: "+clazz.getProtectionDomain().getCodeSource());
-            msg.append("\nclazz.super.CL: "+clazz.getSuperclass().getClassLoader());
-            msg.append("\nclazz.super.CS: "+clazz.getSuperclass().getProtectionDomain().getCodeSource());
-            msg.append("\nclazz.super.hash: "+System.identityHashCode(clazz.getSuperclass()));
-            ClassCastException cce = new ClassCastException(msg.toString());
-            cce.initCause(e);
-            throw cce;
+            // Neither configured nor cached, so discover a factory service under the caller's access control context
+            AuthConfigFactory factory = loadService(loader);
+            if (factory != null)
+            {
+               _factoryClasses.put(loader, new WeakReference<Class<?>>(factory.getClass()));
+               return factory;
+            }
+            // Use the default factory impl
+            factoryName = FACTORY_IMPL;
+            clazz = loader.loadClass(factoryName);
+            _factoryClasses.put(loader, new WeakReference<Class<?>>(clazz));
          }
+         return (AuthConfigFactory) clazz.newInstance();
+      }
+      catch (ClassNotFoundException e)
+      {
+         String msg = "Failed to find AuthConfigFactory : " + factoryName;
+         IllegalStateException ise = new IllegalStateException(msg);
+         ise.initCause(e);
+         throw ise;
+      }
+      catch (IllegalAccessException e)
+      {
+         String msg = "Unable to access class : " + factoryName;
+         IllegalStateException ise = new IllegalStateException(msg);
+         ise.initCause(e);
+         throw ise;
+      }
+      catch (InstantiationException e)
+      {
+         String msg = "Failed to create instance of: " + factoryName;
+         IllegalStateException ise = new IllegalStateException(msg);
+         ise.initCause(e);
+         throw ise;
+      }
+      catch (ClassCastException e)
+      {
+         StringBuffer msg = new StringBuffer(factoryName + " Is not a AuthConfigFactory, ");
+         msg.append("ACF.class.CL: "+ AuthConfigFactory.class.getClassLoader());
+         msg.append("\nACF.class.CS: " + AuthConfigFactory.class.getProtectionDomain().getCodeSource());
+         msg.append("\nACF.class.hash: "+System.identityHashCode(AuthConfigFactory.class));
+         msg.append("\nclazz.CL: "+clazz.getClassLoader());
+         msg.append("\nclazz.CS: "+clazz.getProtectionDomain().getCodeSource());
+         msg.append("\nclazz.super.CL: "+clazz.getSuperclass().getClassLoader());
+         msg.append("\nclazz.super.CS: "+clazz.getSuperclass().getProtectionDomain().getCodeSource());
+         msg.append("\nclazz.super.hash: "+System.identityHashCode(clazz.getSuperclass()));
+         ClassCastException cce = new ClassCastException(msg.toString());
+         cce.initCause(e);
+         throw cce;
       }
-      return _factory;
    }
 
    /**
@@ -439,7 +498,10 @@ public abstract class AuthConfigFactory
        if (securityManager != null)
            securityManager.checkPermission(setFactorySecurityPermission);
 
-      _factory = factory;
+      synchronized (_factoryLock)
+      {
+         _factory = factory;
+      }
    }
 
    /**
@@ -482,13 +544,40 @@ public abstract class AuthConfigFactory
       public boolean isPersistent();
    }
 
+   /**
+    * <p>Construct the first AuthConfigFactory service visible to the given class loader, or return null if there
+    * is none.</p>
+    */
+   private static AuthConfigFactory loadService(ClassLoader loader)
+   {
+      try
+      {
+         Iterator<AuthConfigFactory> services = ServiceLoader.load(AuthConfigFactory.class, loader).iterator();
+         return services.hasNext() ? services.next() : null;
+      }
+      catch (ServiceConfigurationError e)
+      {
+         String msg = "Failed to load AuthConfigFactory service : " + e.getMessage();
+         IllegalStateException ise = new IllegalStateException(msg);
+         ise.initCause(e);
+         throw ise;
+      }
+   }
+
    /** <p>A PrivilegedExceptionAction that looks up the class name identified
-    * by the authcontextfactory.provider system property and loads the class
-    * using the thread context class loader.</p>
+    * by the authconfigprovider.factory system property and loads the class
+    * using the given class loader. When the property is not set, the class
+    * previously resolved for the class loader is returned, or null if there
+    * is none. Callers must hold the factory lock.</p>
     */
    private static class LoadAction implements PrivilegedExceptionAction
    {
+      private final ClassLoader loader;
       private String name;
+      public LoadAction(ClassLoader loader)
+      {
+         this.loader = loader;
+      }
       public String getName()
       {
          return name;
@@ -497,13 +586,13 @@ public abstract class AuthConfigFactory
          throws Exception
       {
          name = System.getProperty(DEFAULT_FACTORY_SECURITY_PROPERTY);
-         if( name == null )
-         {
-            // Use the default factory impl
-            name = FACTORY_IMPL;
-         }
-         ClassLoader loader = Thread.currentThread().getContextClassLoader();
-         Class factoryClass = loader.loadClass(name);
+         if( name != null )
+            return loader.loadClass(name);
+
+         WeakReference<Class<?>> ref = _factoryClasses.get(loader);
+         Class<?> factoryClass = ref != null ? ref.get() : null;
+         if( factoryClass != null )
+            name = factoryClass.getName();
          return factoryClass;
       }
    }